@@ -0,0 +1,188 @@
+package com.dadtvplay.emails.controller;
+
+import com.dadtvplay.emails.model.EmailResponse;
+import com.dadtvplay.emails.model.LookupTrace;
+import com.dadtvplay.emails.model.ServiceFilter;
+import com.dadtvplay.emails.service.ClusterCoordinator;
+import com.dadtvplay.emails.service.ImapEmailService;
+import com.dadtvplay.emails.service.ServiceCatalog;
+import com.dadtvplay.emails.util.AccessTokens;
+import com.dadtvplay.emails.util.NdjsonWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+/**
+ * API interna entre instancias del cluster. Siempre resuelve localmente (nunca reenvía),
+ * así dos instancias con visiones distintas del owner no pueden quedar en un bucle.
+ */
+@RestController
+@RequestMapping("/internal/cluster")
+public class ClusterController {
+
+  private static final Logger log = LoggerFactory.getLogger(ClusterController.class);
+
+  private final ClusterCoordinator clusterCoordinator;
+  private final ImapEmailService imapEmailService;
+  private final ServiceCatalog serviceCatalog;
+  private final ObjectMapper objectMapper;
+
+  @Value("${app.admin.token:}")
+  private String adminToken;
+
+  public ClusterController(ClusterCoordinator clusterCoordinator,
+                           ImapEmailService imapEmailService,
+                           ServiceCatalog serviceCatalog,
+                           ObjectMapper objectMapper) {
+    this.clusterCoordinator = clusterCoordinator;
+    this.imapEmailService = imapEmailService;
+    this.serviceCatalog = serviceCatalog;
+    this.objectMapper = objectMapper;
+  }
+
+  @GetMapping("/ping")
+  public ResponseEntity<?> ping(@RequestHeader(value = ClusterCoordinator.SECRET_HEADER, required = false) String secret) {
+    ResponseEntity<?> denied = checkAccess(secret);
+    if (denied != null) return denied;
+    return ResponseEntity.ok(Map.of(
+        "owner", clusterCoordinator.isOwner(),
+        "currentOwner", clusterCoordinator.currentOwner()
+    ));
+  }
+
+  @GetMapping("/email/last")
+  public ResponseEntity<?> lastEmail(
+      @RequestHeader(value = ClusterCoordinator.SECRET_HEADER, required = false) String secret,
+      @RequestParam("email") String email,
+      @RequestParam("service") String service,
+      @RequestParam(value = "explain", defaultValue = "false") boolean explain,
+      @RequestHeader(value = AccessTokens.ADMIN_TOKEN_HEADER, required = false) String providedToken
+  ) {
+    ResponseEntity<?> denied = checkAccess(secret);
+    if (denied != null) return denied;
+
+    String normalizedEmail = email.trim().toLowerCase();
+    if (!EmailController.isAllowedDomain(normalizedEmail)) {
+      return ResponseEntity.badRequest().body(Map.of(
+          "error", "Email inválido. Debe terminar en @klbdescuentos.com"
+      ));
+    }
+
+    Optional<ServiceFilter> filterOpt = serviceCatalog.get(service);
+    if (filterOpt.isEmpty()) {
+      return ResponseEntity.badRequest().body(Map.of(
+          "error", "Servicio no soportado: " + service
+      ));
+    }
+
+    // Igual que en /api: la traza expone otros buzones, el secreto del cluster no alcanza.
+    if (explain && !AccessTokens.matches(adminToken, providedToken)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of(
+          "error", "explain=true requiere el header " + AccessTokens.ADMIN_TOKEN_HEADER
+      ));
+    }
+
+    LookupTrace trace = explain ? LookupTrace.enabled() : LookupTrace.DISABLED;
+    ResponseEntity<?> res = lookup(normalizedEmail, filterOpt.get(), trace);
+    return explain ? EmailController.withTrace(res, trace) : res;
+  }
+
+  private ResponseEntity<?> lookup(String email, ServiceFilter filter, LookupTrace trace) {
+    try {
+      EmailResponse res = imapEmailService.findLastEmail(email, filter, trace);
+      return ResponseEntity.ok(res);
+    } catch (NoSuchElementException e) {
+      return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of(
+          "error", e.getMessage()
+      ));
+    } catch (Exception e) {
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
+          "error", e.getClass().getSimpleName() + ": " + e.getMessage()
+      ));
+    }
+  }
+
+  @GetMapping("/email/history")
+  public ResponseEntity<StreamingResponseBody> history(
+      @RequestHeader(value = ClusterCoordinator.SECRET_HEADER, required = false) String secret,
+      @RequestParam("email") String email,
+      @RequestParam(value = "service", required = false) String service,
+      @RequestParam(value = "since", required = false) String since,
+      @RequestParam(value = "until", required = false) String until
+  ) {
+    ResponseEntity<?> denied = checkAccess(secret);
+    if (denied != null) return ResponseEntity.status(denied.getStatusCode()).build();
+
+    String normalizedEmail = email.trim().toLowerCase();
+    if (!EmailController.isAllowedDomain(normalizedEmail)) {
+      return ResponseEntity.badRequest()
+          .contentType(MediaType.APPLICATION_JSON)
+          .body(out -> objectMapper.writeValue(out, Map.of("error", "Email inválido. Debe terminar en @klbdescuentos.com")));
+    }
+
+    ServiceFilter filter = service == null ? null : serviceCatalog.get(service).orElse(null);
+    if (service != null && filter == null) {
+      return ResponseEntity.badRequest()
+          .contentType(MediaType.APPLICATION_JSON)
+          .body(out -> objectMapper.writeValue(out, Map.of("error", "Servicio no soportado: " + service)));
+    }
+    Instant sinceAt;
+    Instant untilAt;
+    try {
+      sinceAt = EmailController.parseInstant(since, false);
+      untilAt = EmailController.parseInstant(until, true);
+    } catch (DateTimeParseException e) {
+      return ResponseEntity.badRequest()
+          .contentType(MediaType.APPLICATION_JSON)
+          .body(out -> objectMapper.writeValue(out, Map.of("error", EmailController.INVALID_DATE_ERROR)));
+    }
+
+    StreamingResponseBody body = out -> {
+      NdjsonWriter writer = new NdjsonWriter(out, objectMapper);
+      try {
+        imapEmailService.streamHistory(normalizedEmail, filter, sinceAt, untilAt, writer::write);
+      } catch (IOException e) {
+        // La instancia que reenviaba cortó el stream (su cliente se fue): no es un error.
+        log.debug("Historial de {} cortado por la instancia que lo pidió: {}", normalizedEmail, e.getMessage());
+      } catch (Exception e) {
+        writer.write(Map.of("error", e.getClass().getSimpleName() + ": " + e.getMessage()));
+      }
+    };
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.parseMediaType(NdjsonWriter.CONTENT_TYPE))
+        .body(body);
+  }
+
+  /**
+   * Spring registra el IOException de un stream cortado y lo vuelve a despachar por el servlet
+   * (aunque el lambda lo haya atrapado); sin este handler Tomcat lo loguea como ERROR.
+   */
+  @ExceptionHandler(IOException.class)
+  public void clientDisconnected(IOException e) {
+    log.debug("Cliente desconectado: {}", e.getMessage());
+  }
+
+  private ResponseEntity<?> checkAccess(String secret) {
+    if (!clusterCoordinator.isEnabled()) {
+      return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+    }
+    if (!clusterCoordinator.acceptsSecret(secret)) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+    }
+    return null;
+  }
+}
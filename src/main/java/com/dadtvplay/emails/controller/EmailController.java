@@ -1,15 +1,31 @@
 package com.dadtvplay.emails.controller;
 
 import com.dadtvplay.emails.model.EmailResponse;
+import com.dadtvplay.emails.model.LookupTrace;
 import com.dadtvplay.emails.model.ServiceFilter;
-import com.dadtvplay.emails.service.ImapEmailService;
+import com.dadtvplay.emails.service.ClusterCoordinator;
+import com.dadtvplay.emails.service.ImapWarmup;
 import com.dadtvplay.emails.service.ServiceCatalog;
+import com.dadtvplay.emails.util.AccessTokens;
+import com.dadtvplay.emails.util.NdjsonWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import jakarta.validation.constraints.NotBlank;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.net.http.HttpTimeoutException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 @RestController
@@ -17,18 +33,35 @@ import java.util.*;
 @Validated
 public class EmailController {
 
-  private final ImapEmailService imapEmailService;
+  private static final Logger log = LoggerFactory.getLogger(EmailController.class);
+
+  static final String INVALID_DATE_ERROR = "Fecha inválida: use yyyy-MM-dd o ISO-8601 (ej: 2024-05-01T00:00:00Z)";
+
+  private final ClusterCoordinator clusterCoordinator;
   private final ServiceCatalog serviceCatalog;
+  private final ImapWarmup imapWarmup;
+  private final ObjectMapper objectMapper;
 
-  public EmailController(ImapEmailService imapEmailService, ServiceCatalog serviceCatalog) {
-    this.imapEmailService = imapEmailService;
+  public EmailController(ClusterCoordinator clusterCoordinator,
+                         ServiceCatalog serviceCatalog,
+                         ImapWarmup imapWarmup,
+                         ObjectMapper objectMapper) {
+    this.clusterCoordinator = clusterCoordinator;
     this.serviceCatalog = serviceCatalog;
+    this.imapWarmup = imapWarmup;
+    this.objectMapper = objectMapper;
   }
 
+  // Vacío => explain deshabilitado.
+  @Value("${app.admin.token:}")
+  private String adminToken;
+
   @GetMapping("/email/last")
   public ResponseEntity<?> lastEmail(
       @RequestParam("email") @NotBlank String email,
-      @RequestParam("service") @NotBlank String service
+      @RequestParam("service") @NotBlank String service,
+      @RequestParam(value = "explain", defaultValue = "false") boolean explain,
+      @RequestHeader(value = AccessTokens.ADMIN_TOKEN_HEADER, required = false) String providedToken
   ) {
     String normalizedEmail = email.trim().toLowerCase();
     if (!isAllowedDomain(normalizedEmail)) {
@@ -45,8 +78,28 @@ public class EmailController {
       ));
     }
 
+    // La traza incluye asuntos/remitentes de otros buzones: solo con el token de admin.
+    LookupTrace trace = LookupTrace.DISABLED;
+    if (explain) {
+      if (!AccessTokens.matches(adminToken, providedToken)) {
+        return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of(
+            "error", "explain=true requiere el header " + AccessTokens.ADMIN_TOKEN_HEADER
+        ));
+      }
+      trace = LookupTrace.enabled();
+    }
+
+    long t0 = trace.startPhase();
+    ResponseEntity<?> res = lookup(normalizedEmail, filterOpt.get(), trace);
+    trace.endPhase("total", t0);
+    return explain ? withTrace(res, trace) : res;
+  }
+
+  private ResponseEntity<?> lookup(String normalizedEmail, ServiceFilter filter, LookupTrace trace) {
     try {
-      EmailResponse res = imapEmailService.findLastEmail(normalizedEmail, filterOpt.get());
+      // En modo cluster se resuelve en la instancia dueña del IMAP; si no, localmente.
+      EmailResponse res = clusterCoordinator.findLastEmail(normalizedEmail, filter, trace);
+      imapWarmup.markLookupSucceeded();
       return ResponseEntity.ok(res);
     } catch (NoSuchElementException e) {
       return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of(
@@ -56,6 +109,11 @@ public class EmailController {
       return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
           "error", e.getMessage()
       ));
+    } catch (HttpTimeoutException e) {
+      // El owner del cluster está vivo pero no respondió a tiempo.
+      return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body(Map.of(
+          "error", "El owner del cluster no respondió a tiempo: " + e.getMessage()
+      ));
     } catch (Exception e) {
       return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of(
           "error", "Error consultando IMAP",
@@ -64,6 +122,107 @@ public class EmailController {
     }
   }
 
+  /** Envuelve la respuesta normal como {"result": ..., "trace": ...} o {"error": ..., "trace": ...}. */
+  static ResponseEntity<?> withTrace(ResponseEntity<?> res, LookupTrace trace) {
+    Map<String, Object> out = new LinkedHashMap<>();
+    if (res.getStatusCode().is2xxSuccessful()) {
+      out.put("result", res.getBody());
+    } else if (res.getBody() instanceof Map<?, ?> body) {
+      body.forEach((k, v) -> out.put(String.valueOf(k), v));
+    }
+    out.put("trace", trace.toMap());
+    return ResponseEntity.status(res.getStatusCode()).body(out);
+  }
+
+  /**
+   * Historial de correos del buzón en NDJSON (una línea por correo, del más nuevo al más viejo).
+   * since/until aceptan un instante ISO-8601 o una fecha yyyy-MM-dd (until incluye todo ese día).
+   * Si falla a mitad del stream, la última línea es {"error": ...}.
+   */
+  @GetMapping("/email/history")
+  public ResponseEntity<StreamingResponseBody> history(
+      @RequestParam("email") @NotBlank String email,
+      @RequestParam(value = "service", required = false) String service,
+      @RequestParam(value = "since", required = false) String since,
+      @RequestParam(value = "until", required = false) String until
+  ) {
+    String normalizedEmail = email.trim().toLowerCase();
+    if (!isAllowedDomain(normalizedEmail)) {
+      return jsonError(HttpStatus.BAD_REQUEST, Map.of(
+          "error", "Email inválido. Debe terminar en @klbdescuentos.com"
+      ));
+    }
+
+    ServiceFilter filter = null;
+    if (service != null && !service.isBlank()) {
+      Optional<ServiceFilter> filterOpt = serviceCatalog.get(service);
+      if (filterOpt.isEmpty()) {
+        return jsonError(HttpStatus.BAD_REQUEST, Map.of(
+            "error", "Servicio no soportado: " + service,
+            "supported", serviceCatalog.all().keySet()
+        ));
+      }
+      filter = filterOpt.get();
+    }
+
+    Instant sinceAt;
+    Instant untilAt;
+    try {
+      sinceAt = parseInstant(since, false);
+      untilAt = parseInstant(until, true);
+    } catch (DateTimeParseException e) {
+      return jsonError(HttpStatus.BAD_REQUEST, Map.of(
+          "error", INVALID_DATE_ERROR
+      ));
+    }
+
+    ServiceFilter f = filter;
+    StreamingResponseBody body = out -> {
+      try {
+        clusterCoordinator.streamHistory(normalizedEmail, f, sinceAt, untilAt, out);
+      } catch (IOException e) {
+        // Cortar el stream es una forma normal de terminar el historial; la sesión IMAP ya volvió al pool.
+        log.debug("Historial de {} cortado por el cliente: {}", normalizedEmail, e.getMessage());
+      } catch (Exception e) {
+        new NdjsonWriter(out, objectMapper).write(Map.of(
+            "error", e.getClass().getSimpleName() + ": " + e.getMessage()
+        ));
+      }
+    };
+
+    return ResponseEntity.ok()
+        .contentType(MediaType.parseMediaType(NdjsonWriter.CONTENT_TYPE))
+        .body(body);
+  }
+
+  /**
+   * Spring registra el IOException de un stream cortado y lo vuelve a despachar por el servlet
+   * (aunque el lambda lo haya atrapado); sin este handler Tomcat lo loguea como ERROR.
+   */
+  @ExceptionHandler(IOException.class)
+  public void clientDisconnected(IOException e) {
+    log.debug("Cliente desconectado: {}", e.getMessage());
+  }
+
+  // Los endpoints de streaming deben declarar StreamingResponseBody, así que los errores también van por ahí.
+  private ResponseEntity<StreamingResponseBody> jsonError(HttpStatus status, Map<String, Object> body) {
+    return ResponseEntity.status(status)
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(out -> objectMapper.writeValue(out, body));
+  }
+
+  static Instant parseInstant(String raw, boolean endOfDay) {
+    if (raw == null || raw.isBlank()) return null;
+    String v = raw.trim();
+    if (v.length() == 10) {
+      LocalDate d = LocalDate.parse(v);
+      return endOfDay
+          ? d.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().minusMillis(1)
+          : d.atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+    return Instant.parse(v);
+  }
+
   // Útil para el frontend (llenar el select dinámicamente)
   @GetMapping("/services")
   public Map<String, Object> services() {
@@ -77,7 +236,7 @@ public class EmailController {
     return out;
   }
 
-  private boolean isAllowedDomain(String email) {
+  static boolean isAllowedDomain(String email) {
     return email.endsWith("@klbdescuentos.com") && email.contains("@") && !email.startsWith("@");
   }
 }
@@ -1,13 +1,26 @@
 package com.dadtvplay.emails.controller;
 
+import com.dadtvplay.emails.service.ImapWarmup;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
 public class HealthController {
 
+  private final ImapWarmup imapWarmup;
+
+  public HealthController(ImapWarmup imapWarmup) {
+    this.imapWarmup = imapWarmup;
+  }
+
+  // Con IMAP_WARMUP_ENABLED=true, Render no enruta tráfico hasta que el warmup termine.
   @GetMapping("/health")
-  public String health() {
-    return "OK";
+  public ResponseEntity<String> health() {
+    if (!imapWarmup.isReady()) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("WARMING_UP");
+    }
+    return ResponseEntity.ok("OK");
   }
 }
@@ -0,0 +1,12 @@
+package com.dadtvplay.emails.model;
+
+import java.time.Instant;
+
+public record EmailHistoryItem(
+    String service,
+    String mailbox,
+    long uid,
+    String subject,
+    String from,
+    Instant receivedAt
+) {}
@@ -0,0 +1,139 @@
+package com.dadtvplay.emails.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traza de un lookup para ?explain=true: mensajes inspeccionados, rechazos y su motivo,
+ * qué needles de {@link ServiceFilter} coincidieron, comandos IMAP, bytes y tiempo por fase.
+ * Con {@link #DISABLED} todos los métodos salen en la primera línea, así que instrumentar
+ * el camino normal no cuesta nada. Con hedging dos hilos pueden escribir a la vez, por eso
+ * el lock se toma solo después de ese chequeo.
+ */
+public final class LookupTrace {
+
+  public static final LookupTrace DISABLED = new LookupTrace(false);
+
+  // Suficiente para ajustar filtros sin devolver miles de entradas.
+  private static final int MAX_SAMPLES = 100;
+
+  private final boolean enabled;
+  private final Map<String, Long> phaseMicros = new LinkedHashMap<>();
+  private final Map<String, Integer> imapCommands = new LinkedHashMap<>();
+  private final Map<String, Integer> rejectionsByReason = new LinkedHashMap<>();
+  private final List<Map<String, Object>> rejected = new ArrayList<>();
+  private final List<Map<String, Object>> matched = new ArrayList<>();
+  private final Map<String, Object> notes = new LinkedHashMap<>();
+  private int messagesInspected;
+  private long bytesRead;
+  private long bytesWritten;
+  private Object remote;
+
+  private LookupTrace(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public static LookupTrace enabled() {
+    return new LookupTrace(true);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Marca de inicio para {@link #endPhase(String, long)}. */
+  public long startPhase() {
+    if (!enabled) return 0L;
+    return System.nanoTime();
+  }
+
+  public void endPhase(String phase, long startedAt) {
+    if (!enabled) return;
+    long micros = (System.nanoTime() - startedAt) / 1_000;
+    synchronized (this) {
+      phaseMicros.merge(phase, micros, Long::sum);
+    }
+  }
+
+  public void imapCommand(String command) {
+    if (!enabled) return;
+    synchronized (this) {
+      imapCommands.merge(command, 1, Integer::sum);
+    }
+  }
+
+  public void inspected(int count) {
+    if (!enabled) return;
+    synchronized (this) {
+      messagesInspected += count;
+    }
+  }
+
+  public void rejected(int messageNumber, String reason, String from, String subject) {
+    if (!enabled) return;
+    synchronized (this) {
+      rejectionsByReason.merge(reason, 1, Integer::sum);
+      if (rejected.size() < MAX_SAMPLES) {
+        Map<String, Object> r = new LinkedHashMap<>();
+        r.put("messageNumber", messageNumber);
+        r.put("reason", reason);
+        r.put("from", from);
+        r.put("subject", subject);
+        rejected.add(r);
+      }
+    }
+  }
+
+  public void matched(int messageNumber, String fromNeedle, String subjectNeedle, String recipientSource) {
+    if (!enabled) return;
+    synchronized (this) {
+      if (matched.size() < MAX_SAMPLES) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("messageNumber", messageNumber);
+        m.put("fromNeedle", fromNeedle);
+        m.put("subjectNeedle", subjectNeedle);
+        m.put("recipientSource", recipientSource);
+        matched.add(m);
+      }
+    }
+  }
+
+  public void note(String key, Object value) {
+    if (!enabled) return;
+    synchronized (this) {
+      notes.put(key, value);
+    }
+  }
+
+  public void bytes(long read, long written) {
+    if (!enabled) return;
+    synchronized (this) {
+      bytesRead += read;
+      bytesWritten += written;
+    }
+  }
+
+  /** Traza devuelta por el owner cuando el lookup se reenvió dentro del cluster. */
+  public void remote(Object remoteTrace) {
+    if (!enabled) return;
+    synchronized (this) {
+      remote = remoteTrace;
+    }
+  }
+
+  public synchronized Map<String, Object> toMap() {
+    Map<String, Object> out = new LinkedHashMap<>(notes);
+    out.put("messagesInspected", messagesInspected);
+    out.put("rejectionsByReason", rejectionsByReason);
+    out.put("rejected", rejected);
+    out.put("matched", matched);
+    out.put("imapCommands", imapCommands);
+    out.put("bytesRead", bytesRead);
+    out.put("bytesWritten", bytesWritten);
+    out.put("phaseMicros", phaseMicros);
+    if (remote != null) out.put("remote", remote);
+    return out;
+  }
+}
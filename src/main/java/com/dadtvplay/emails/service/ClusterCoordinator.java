@@ -0,0 +1,333 @@
+package com.dadtvplay.emails.service;
+
+import com.dadtvplay.emails.model.EmailResponse;
+import com.dadtvplay.emails.model.LookupTrace;
+import com.dadtvplay.emails.model.ServiceFilter;
+import com.dadtvplay.emails.util.AccessTokens;
+import com.dadtvplay.emails.util.NdjsonWriter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Modo cluster opcional: de todas las instancias solo una (el "owner") se conecta al IMAP.
+ * El owner es la primera instancia viva según el orden de cluster.peers; el resto le reenvía
+ * los lookups por HTTP (/internal/cluster/...). Si el owner deja de responder, la siguiente
+ * de la lista toma su lugar; cuando vuelve, recupera el rol.
+ */
+@Component
+public class ClusterCoordinator {
+
+  private static final Logger log = LoggerFactory.getLogger(ClusterCoordinator.class);
+
+  public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+  private final ImapEmailService imapEmailService;
+  private final ImapConnectionPool connectionPool;
+  private final ObjectMapper objectMapper;
+
+  @Value("${cluster.enabled:false}")
+  private boolean enabled;
+
+  @Value("${cluster.self-url:}")
+  private String selfUrl;
+
+  // Orden = prioridad. Ej: http://localhost:8081,http://localhost:8082
+  @Value("${cluster.peers:}")
+  private String peersRaw;
+
+  @Value("${cluster.secret:}")
+  private String secret;
+
+  // Para reenviar explain=true: el owner vuelve a validar el token antes de armar la traza.
+  @Value("${app.admin.token:}")
+  private String adminToken;
+
+  @Value("${cluster.heartbeat-ms:2000}")
+  private long heartbeatMs;
+
+  @Value("${cluster.connect-timeout-ms:1000}")
+  private long connectTimeoutMs;
+
+  @Value("${cluster.lookup-timeout-ms:30000}")
+  private long lookupTimeoutMs;
+
+  private final List<String> peers = new ArrayList<>();
+  private final Map<String, Boolean> alive = new ConcurrentHashMap<>();
+  private volatile boolean owner = true;
+
+  private HttpClient http;
+  private ScheduledExecutorService heartbeat;
+
+  public ClusterCoordinator(ImapEmailService imapEmailService,
+                            ImapConnectionPool connectionPool,
+                            ObjectMapper objectMapper) {
+    this.imapEmailService = imapEmailService;
+    this.connectionPool = connectionPool;
+    this.objectMapper = objectMapper;
+  }
+
+  @PostConstruct
+  void start() {
+    if (!enabled) return;
+
+    if (selfUrl == null || selfUrl.isBlank()) {
+      throw new IllegalStateException("cluster.enabled=true requiere CLUSTER_SELF_URL");
+    }
+    // /internal/cluster/* vive en el mismo puerto público que /api: sin secreto sería abierto.
+    if (secret == null || secret.isBlank()) {
+      throw new IllegalStateException("cluster.enabled=true requiere CLUSTER_SECRET");
+    }
+    selfUrl = normalizeUrl(selfUrl);
+    for (String p : peersRaw.split(",")) {
+      if (!p.isBlank()) peers.add(normalizeUrl(p));
+    }
+    if (!peers.contains(selfUrl)) peers.add(selfUrl);
+
+    http = HttpClient.newBuilder()
+        .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+        .build();
+
+    refresh();
+
+    heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "cluster-heartbeat");
+      t.setDaemon(true);
+      return t;
+    });
+    heartbeat.scheduleWithFixedDelay(this::refresh, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  void stop() {
+    if (heartbeat != null) heartbeat.shutdownNow();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Sin cluster, cada instancia es su propio owner. */
+  public boolean isOwner() {
+    return !enabled || owner;
+  }
+
+  public String currentOwner() {
+    if (!enabled) return selfUrl;
+    for (String p : peers) {
+      if (p.equals(selfUrl)) return selfUrl;
+      if (alive.getOrDefault(p, false)) return p;
+    }
+    return selfUrl;
+  }
+
+  public boolean acceptsSecret(String provided) {
+    return AccessTokens.matches(secret, provided);
+  }
+
+  /**
+   * Resuelve el lookup en el owner actual. Si no se puede conectar con el owner lo marcamos
+   * caído y probamos con el siguiente; en el peor caso terminamos atendiendo localmente.
+   * Si el owner acepta la conexión pero tarda más que cluster.lookup-timeout-ms, el
+   * HttpTimeoutException sube tal cual: el owner sigue vivo y el IMAP lento no es motivo
+   * para que otra instancia abra su propia sesión.
+   */
+  public EmailResponse findLastEmail(String mailboxEmail, ServiceFilter filter, LookupTrace trace) throws Exception {
+    while (true) {
+      String target = currentOwner();
+      if (!enabled || target.equals(selfUrl)) {
+        if (enabled) trace.note("servedBy", selfUrl);
+        return imapEmailService.findLastEmail(mailboxEmail, filter, trace);
+      }
+
+      long t = trace.startPhase();
+      try {
+        trace.note("servedBy", target);
+        return forwardLastEmail(target, mailboxEmail, filter, trace);
+      } catch (ConnectException | HttpConnectTimeoutException e) {
+        trace.note("failedOwner", target);
+        log.warn("Owner {} no respondió ({}), reintentando con el siguiente", target, e.getMessage());
+        markAlive(target, false);
+      } finally {
+        trace.endPhase("forward", t);
+      }
+    }
+  }
+
+  private EmailResponse forwardLastEmail(String target, String mailboxEmail, ServiceFilter filter,
+                                         LookupTrace trace) throws Exception {
+    URI uri = URI.create(target + "/internal/cluster/email/last"
+        + "?email=" + URLEncoder.encode(mailboxEmail, StandardCharsets.UTF_8)
+        + "&service=" + URLEncoder.encode(filter.key(), StandardCharsets.UTF_8)
+        + (trace.isEnabled() ? "&explain=true" : ""));
+
+    HttpRequest.Builder req = requestBuilder(uri, lookupTimeoutMs);
+    if (trace.isEnabled() && adminToken != null && !adminToken.isBlank()) {
+      req.header(AccessTokens.ADMIN_TOKEN_HEADER, adminToken);
+    }
+    HttpResponse<byte[]> res = http.send(req.build(), HttpResponse.BodyHandlers.ofByteArray());
+
+    // Con explain el owner responde {"result": ..., "trace": ...} (o {"error": ..., "trace": ...}).
+    JsonNode explained = null;
+    if (trace.isEnabled()) {
+      explained = readTree(res.body());
+      if (explained != null && explained.has("trace")) trace.remote(explained.get("trace"));
+    }
+
+    if (res.statusCode() == 200) {
+      if (explained != null && explained.has("result")) {
+        return objectMapper.treeToValue(explained.get("result"), EmailResponse.class);
+      }
+      return objectMapper.readValue(res.body(), EmailResponse.class);
+    }
+
+    String error = errorMessage(res.body());
+    if (res.statusCode() == 404) throw new NoSuchElementException(error);
+    throw new IllegalStateException("Owner " + target + " respondió " + res.statusCode() + ": " + error);
+  }
+
+  /**
+   * Historial en NDJSON. Si el owner es otra instancia, se reenvía su stream tal cual;
+   * solo hay failover antes de recibir la respuesta, una vez empezado el stream no se reintenta.
+   */
+  public void streamHistory(String mailboxEmail, ServiceFilter filter, Instant since, Instant until,
+                            OutputStream out) throws Exception {
+    while (true) {
+      String target = currentOwner();
+      if (!enabled || target.equals(selfUrl)) {
+        NdjsonWriter writer = new NdjsonWriter(out, objectMapper);
+        imapEmailService.streamHistory(mailboxEmail, filter, since, until, writer::write);
+        return;
+      }
+
+      StringBuilder url = new StringBuilder(target).append("/internal/cluster/email/history")
+          .append("?email=").append(URLEncoder.encode(mailboxEmail, StandardCharsets.UTF_8));
+      if (filter != null) url.append("&service=").append(URLEncoder.encode(filter.key(), StandardCharsets.UTF_8));
+      if (since != null) url.append("&since=").append(since);
+      if (until != null) url.append("&until=").append(until);
+
+      HttpResponse<InputStream> res;
+      try {
+        // El historial puede tardar mucho más que un lookup: sin timeout de respuesta.
+        HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url.toString())).GET();
+        if (secret != null && !secret.isBlank()) b.header(SECRET_HEADER, secret);
+        res = http.send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+      } catch (ConnectException | HttpConnectTimeoutException e) {
+        log.warn("Owner {} no respondió ({}), reintentando con el siguiente", target, e.getMessage());
+        markAlive(target, false);
+        continue;
+      }
+
+      try (InputStream in = res.body()) {
+        if (res.statusCode() != 200) {
+          throw new IllegalStateException("Owner " + target + " respondió " + res.statusCode() + ": "
+              + errorMessage(in.readAllBytes()));
+        }
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+          out.write(buf, 0, n);
+          out.flush();
+        }
+      }
+      return;
+    }
+  }
+
+  void refresh() {
+    try {
+      for (String p : peers) {
+        if (p.equals(selfUrl)) break; // solo importan los que tienen más prioridad que nosotros
+        markAlive(p, ping(p));
+      }
+
+      boolean nowOwner = currentOwner().equals(selfUrl);
+      if (nowOwner != owner) {
+        owner = nowOwner;
+        log.info("Cluster: {} ahora {} owner del IMAP (owner actual: {})",
+            selfUrl, nowOwner ? "es" : "NO es", currentOwner());
+        // Al ceder el rol no tiene sentido mantener sesiones IMAP abiertas.
+        if (!nowOwner) connectionPool.closeIdle();
+      }
+    } catch (Exception e) {
+      log.warn("Cluster heartbeat falló: {}", e.getMessage());
+    }
+  }
+
+  private boolean ping(String peer) {
+    try {
+      HttpResponse<Void> res = http.send(
+          request(URI.create(peer + "/internal/cluster/ping"), connectTimeoutMs),
+          HttpResponse.BodyHandlers.discarding()
+      );
+      return res.statusCode() == 200;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  private void markAlive(String peer, boolean up) {
+    Boolean prev = alive.put(peer, up);
+    if (prev == null || prev != up) {
+      log.info("Cluster: peer {} {}", peer, up ? "disponible" : "caído");
+    }
+  }
+
+  private HttpRequest request(URI uri, long timeoutMs) {
+    return requestBuilder(uri, timeoutMs).build();
+  }
+
+  private HttpRequest.Builder requestBuilder(URI uri, long timeoutMs) {
+    HttpRequest.Builder b = HttpRequest.newBuilder(uri)
+        .timeout(Duration.ofMillis(timeoutMs))
+        .GET();
+    if (secret != null && !secret.isBlank()) b.header(SECRET_HEADER, secret);
+    return b;
+  }
+
+  private String errorMessage(byte[] body) {
+    JsonNode node = readTree(body);
+    if (node != null && node.hasNonNull("error")) return node.get("error").asText();
+    return new String(body, StandardCharsets.UTF_8);
+  }
+
+  private JsonNode readTree(byte[] body) {
+    try {
+      return objectMapper.readTree(body);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static String normalizeUrl(String url) {
+    String u = url.trim();
+    while (u.endsWith("/")) u = u.substring(0, u.length() - 1);
+    return u;
+  }
+}
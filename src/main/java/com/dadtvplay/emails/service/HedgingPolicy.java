@@ -0,0 +1,177 @@
+package com.dadtvplay.emails.service;
+
+import com.dadtvplay.emails.model.LookupTrace;
+import com.dadtvplay.emails.util.CountingSocketFactory;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Hedging de pasos IMAP: si un paso (scan, body) tarda más que el percentil configurado de sus
+ * últimas ejecuciones, se lanza el mismo paso en una segunda conexión y gana el primero que
+ * termine; el perdedor se aborta cerrando su conexión. Un presupuesto tipo token bucket limita
+ * los hedges a una fracción pequeña del tráfico para no duplicar carga cuando el servidor
+ * entero está lento.
+ */
+@Component
+public class HedgingPolicy {
+
+  /** Un intento de un paso. abort() debe liberar su conexión aunque run() siga bloqueado. */
+  public interface Attempt<T> {
+    T run() throws Exception;
+
+    void abort();
+  }
+
+  private static final int WINDOW = 256;
+  private static final double MAX_TOKENS = 3.0;
+
+  @Value("${imap.hedge.enabled:false}")
+  private boolean enabled;
+
+  @Value("${imap.hedge.percentile:95}")
+  private double percentile;
+
+  @Value("${imap.hedge.min-delay-ms:250}")
+  private long minDelayMs;
+
+  // Antes de tener suficientes muestras no sabemos qué es "lento": no hacemos hedge.
+  @Value("${imap.hedge.min-samples:20}")
+  private int minSamples;
+
+  // Fracción de pasos que puede generar un hedge (0.05 => como mucho ~5%).
+  @Value("${imap.hedge.budget-ratio:0.05}")
+  private double budgetRatio;
+
+  private final Map<String, LatencyWindow> windows = new ConcurrentHashMap<>();
+  private double tokens;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "imap-hedge");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Ejecuta el paso. Sin hedging corre primary en el hilo actual. Con hedging, hedgeFactory
+   * puede devolver null si el paso no se puede repetir en otra conexión.
+   */
+  public <T> T execute(String step, Attempt<T> primary, Supplier<Attempt<T>> hedgeFactory,
+                       LookupTrace trace) throws Exception {
+    if (!enabled) return primary.run();
+
+    LatencyWindow window = windows.computeIfAbsent(step, k -> new LatencyWindow());
+    long start = System.nanoTime();
+    CompletionService<Outcome<T>> done = new ExecutorCompletionService<>(executor);
+    submit(done, primary, false);
+
+    long delayMs = window.thresholdMs();
+    trace.note("hedge." + step + ".thresholdMs", delayMs);
+
+    Future<Outcome<T>> first = delayMs > 0 ? done.poll(delayMs, TimeUnit.MILLISECONDS) : null;
+    if (first != null || delayMs <= 0 || !tryAcquireToken()) {
+      Outcome<T> o = first != null ? first.get() : done.take().get();
+      window.record(System.nanoTime() - start);
+      trace.note("hedge." + step, first != null ? "not-needed" : delayMs <= 0 ? "collecting-samples" : "no-budget");
+      return o.unwrap();
+    }
+
+    Attempt<T> hedge = hedgeFactory.get();
+    if (hedge == null) {
+      Outcome<T> o = done.take().get();
+      window.record(System.nanoTime() - start);
+      trace.note("hedge." + step, "not-possible");
+      return o.unwrap();
+    }
+    submit(done, hedge, true);
+
+    // Gana el primer intento exitoso; si el primero falla esperamos al otro.
+    Outcome<T> a = done.take().get();
+    if (a.error() == null) {
+      (a.hedge() ? primary : hedge).abort();
+      window.record(System.nanoTime() - start);
+      trace.note("hedge." + step, a.hedge() ? "hedge-won" : "primary-won");
+      return a.value();
+    }
+    (a.hedge() ? hedge : primary).abort();
+
+    Outcome<T> b = done.take().get();
+    if (b.error() != null) (b.hedge() ? hedge : primary).abort();
+    window.record(System.nanoTime() - start);
+    trace.note("hedge." + step, b.hedge() ? "hedge-won" : "primary-won");
+    return b.unwrap();
+  }
+
+  @PreDestroy
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private <T> void submit(CompletionService<Outcome<T>> done, Attempt<T> attempt, boolean isHedge) {
+    // El conteo de bytes del lookup va asociado al hilo; lo pasamos al hilo del intento.
+    CountingSocketFactory.Counter counter = CountingSocketFactory.current();
+    done.submit(() -> {
+      CountingSocketFactory.bind(counter);
+      try {
+        return new Outcome<>(attempt.run(), null, isHedge);
+      } catch (Exception e) {
+        return new Outcome<>(null, e, isHedge);
+      } finally {
+        CountingSocketFactory.end();
+      }
+    });
+  }
+
+  private synchronized boolean tryAcquireToken() {
+    if (tokens >= 1.0) {
+      tokens -= 1.0;
+      return true;
+    }
+    return false;
+  }
+
+  private synchronized void earnToken() {
+    tokens = Math.min(MAX_TOKENS, tokens + Math.max(0.0, budgetRatio));
+  }
+
+  private record Outcome<T>(T value, Exception error, boolean hedge) {
+    T unwrap() throws Exception {
+      if (error != null) throw error;
+      return value;
+    }
+  }
+
+  /** Últimas WINDOW duraciones de un paso, para estimar el percentil. */
+  private final class LatencyWindow {
+    private final long[] nanos = new long[WINDOW];
+    private int count;
+    private int next;
+
+    synchronized void record(long elapsedNanos) {
+      nanos[next] = elapsedNanos;
+      next = (next + 1) % WINDOW;
+      if (count < WINDOW) count++;
+      earnToken();
+    }
+
+    /** 0 => todavía no hay muestras suficientes, no hacer hedge. */
+    synchronized long thresholdMs() {
+      if (count < Math.max(1, minSamples)) return 0L;
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      double p = Math.min(100.0, Math.max(0.0, percentile));
+      int idx = (int) Math.ceil(p / 100.0 * count) - 1;
+      long pNanos = sorted[Math.max(0, Math.min(count - 1, idx))];
+      return Math.max(minDelayMs, pNanos / 1_000_000);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package com.dadtvplay.emails.service;
+
+import com.dadtvplay.emails.util.CountingSocketFactory;
+import com.sun.mail.imap.IMAPStore;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Mantiene un pequeño pool de conexiones IMAP ya autenticadas.
+ * El login IMAPS (TCP + TLS + LOGIN) es lo más caro de cada consulta, así que reutilizamos
+ * los Store entre requests. La carpeta se abre y cierra en cada consulta para ver siempre
+ * los correos nuevos.
+ */
+@Component
+public class ImapConnectionPool {
+
+  private static final Logger log = LoggerFactory.getLogger(ImapConnectionPool.class);
+
+  @Value("${imap.host}")
+  private String host;
+
+  @Value("${imap.port}")
+  private int port;
+
+  @Value("${imap.username}")
+  private String username;
+
+  @Value("${imap.password}")
+  private String password;
+
+  @Value("${imap.ssl.trust:}")
+  private String sslTrust;
+
+  // Sin timeouts un servidor que no responde deja el hilo (y el warmup) bloqueado para siempre.
+  @Value("${imap.connect-timeout-ms:10000}")
+  private int connectTimeoutMs;
+
+  @Value("${imap.read-timeout-ms:30000}")
+  private int readTimeoutMs;
+
+  @Value("${imap.pool.max-idle:2}")
+  private int maxIdle;
+
+  // Los servidores cPanel/Dovecot cortan sesiones inactivas; mejor descartarlas antes.
+  @Value("${imap.pool.idle-ttl-ms:300000}")
+  private long idleTtlMs;
+
+  // COMPRESS=DEFLATE (RFC 4978) después del LOGIN, solo si el servidor lo anuncia.
+  @Value("${imap.compress.enabled:true}")
+  private boolean compressEnabled;
+
+  // -1 = nivel por defecto de Deflater. Con pocos KB por respuesta, 1 comprime casi igual.
+  @Value("${imap.compress.level:-1}")
+  private int compressLevel;
+
+  private record IdleStore(Store store, long idleSince) {}
+
+  private final Deque<IdleStore> idle = new ArrayDeque<>();
+  private final Map<Store, Socket> sockets = new ConcurrentHashMap<>();
+
+  private Session session;
+  private volatile Boolean compressAdvertised;
+
+  public int maxIdle() {
+    return Math.max(0, maxIdle);
+  }
+
+  public Store borrow() throws MessagingException {
+    while (true) {
+      IdleStore candidate;
+      synchronized (idle) {
+        candidate = idle.pollFirst();
+      }
+      if (candidate == null) break;
+
+      long idleFor = System.currentTimeMillis() - candidate.idleSince();
+      if (idleFor > idleTtlMs || !candidate.store().isConnected()) {
+        closeQuietly(candidate.store());
+        continue;
+      }
+      return candidate.store();
+    }
+
+    Store store = session().getStore("imaps");
+    CountingSocketFactory.takeLastCreated();
+    store.connect(host, port, username, password);
+    Socket socket = CountingSocketFactory.takeLastCreated();
+    if (socket != null) sockets.put(store, socket);
+    logCompression(store);
+    return store;
+  }
+
+  /** null mientras no hubo ninguna conexión; si no, si la sesión corre con COMPRESS=DEFLATE. */
+  public Boolean compressionActive() {
+    Boolean advertised = compressAdvertised;
+    return advertised == null ? null : compressEnabled && advertised;
+  }
+
+  private void logCompression(Store store) {
+    if (compressAdvertised != null || !(store instanceof IMAPStore imap)) return;
+    try {
+      boolean advertised = imap.hasCapability("COMPRESS=DEFLATE");
+      compressAdvertised = advertised;
+      log.info("IMAP COMPRESS=DEFLATE: {}", !advertised ? "no anunciado por el servidor"
+          : compressEnabled ? "activo" : "anunciado pero deshabilitado (imap.compress.enabled=false)");
+    } catch (MessagingException ignored) {}
+  }
+
+  /**
+   * Corta la conexión cerrando su socket. Es la única forma de desbloquear a un hilo que está
+   * esperando una respuesta IMAP: Folder.close() espera el mismo lock que tiene ese hilo.
+   * Quien usaba el Store después debe devolverlo con release(store, false).
+   */
+  public void abort(Store store) {
+    if (store == null) return;
+    Socket socket = sockets.remove(store);
+    try {
+      if (socket != null) socket.close();
+    } catch (Exception ignored) {}
+  }
+
+  /**
+   * Devuelve la conexión al pool. Si la consulta falló (reusable=false) la cerramos:
+   * no sabemos en qué estado quedó el protocolo.
+   */
+  public void release(Store store, boolean reusable) {
+    if (store == null) return;
+    if (reusable) {
+      synchronized (idle) {
+        if (idle.size() < maxIdle()) {
+          idle.addFirst(new IdleStore(store, System.currentTimeMillis()));
+          return;
+        }
+      }
+    }
+    closeQuietly(store);
+  }
+
+  public int idleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    closeIdle();
+  }
+
+  public void closeIdle() {
+    synchronized (idle) {
+      for (IdleStore s : idle) closeQuietly(s.store());
+      idle.clear();
+    }
+  }
+
+  private synchronized Session session() {
+    if (session == null) {
+      Properties props = new Properties();
+      props.put("mail.store.protocol", "imaps");
+      props.put("mail.imaps.host", host);
+      props.put("mail.imaps.port", String.valueOf(port));
+      props.put("mail.imaps.ssl.enable", "true");
+      props.put("mail.imaps.connectiontimeout", String.valueOf(connectTimeoutMs));
+      props.put("mail.imaps.timeout", String.valueOf(readTimeoutMs));
+
+      // Para servidores con certificado self-signed o cadena incompleta.
+      // Ejemplo recomendado: IMAP_SSL_TRUST=mail.tudominio.com (o "*" si no hay alternativa).
+      String trust = (sslTrust == null || sslTrust.isBlank()) ? host : sslTrust.trim();
+      props.put("mail.imaps.ssl.trust", trust);
+
+      // Socket plano con conteo de bytes; JavaMail monta TLS encima (usa ssl.trust igual).
+      props.put("mail.imaps.socketFactory", new CountingSocketFactory());
+
+      // El socket contado queda debajo de TLS y de DEFLATE: se miden bytes comprimidos.
+      props.put("mail.imaps.compress.enable", String.valueOf(compressEnabled));
+      props.put("mail.imaps.compress.level", String.valueOf(compressLevel));
+
+      session = Session.getInstance(props);
+    }
+    return session;
+  }
+
+  private void closeQuietly(Store store) {
+    if (store == null) return;
+    sockets.remove(store);
+    try {
+      store.close();
+    } catch (Exception ignored) {}
+  }
+}
@@ -1,25 +1,34 @@
 package com.dadtvplay.emails.service;
 
+import com.dadtvplay.emails.model.EmailHistoryItem;
 import com.dadtvplay.emails.model.EmailResponse;
+import com.dadtvplay.emails.model.LookupTrace;
 import com.dadtvplay.emails.model.ServiceFilter;
+import com.dadtvplay.emails.util.CountingSocketFactory;
 import com.dadtvplay.emails.util.MailBodyExtractor;
+import com.sun.mail.imap.IMAPFolder;
 import jakarta.mail.*;
 import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeUtility;
 import jakarta.mail.search.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.time.Instant;
 import java.util.*;
 
 @Service
 public class ImapEmailService {
 
-  @Value("${imap.host}")
-  private String host;
+  private static final Logger log = LoggerFactory.getLogger(ImapEmailService.class);
 
-  @Value("${imap.port}")
-  private int port;
+  private final ImapConnectionPool connectionPool;
+  private final MailBodyStore bodyStore;
+  private final HedgingPolicy hedgingPolicy;
 
   @Value("${imap.username}")
   private String username;
@@ -30,61 +39,111 @@ public class ImapEmailService {
   @Value("${imap.folder}")
   private String folderName;
 
-  @Value("${imap.ssl.trust:}")
-  private String sslTrust;
-
   @Value("${imap.scan.max:500}")
   private int maxScan;
 
+  @Value("${imap.history.page-size:200}")
+  private int historyPageSize;
+
+  // En vez del ENVELOPE (que trae además Sender, Reply-To, Message-ID, In-Reply-To y
+  // RFC822.SIZE) pedimos solo INTERNALDATE y los headers que mira el matcher.
+  @Value("${imap.fetch.minimal:true}")
+  private boolean minimalFetch;
+
+  private static final int HISTORY_PAGES_PER_SELECT = 10;
+
+  private static final String[] MATCH_HEADERS = {"From", "Subject", "To", "Cc"};
+
+  private static final String[] RECIPIENT_HEADERS = {
+      "To", "Cc", "Delivered-To", "X-Original-To", "Envelope-To"
+  };
+
+  public ImapEmailService(ImapConnectionPool connectionPool, MailBodyStore bodyStore, HedgingPolicy hedgingPolicy) {
+    this.connectionPool = connectionPool;
+    this.bodyStore = bodyStore;
+    this.hedgingPolicy = hedgingPolicy;
+  }
+
   public EmailResponse findLastEmail(String mailboxEmail, ServiceFilter filter) throws Exception {
+    return findLastEmail(mailboxEmail, filter, LookupTrace.DISABLED);
+  }
+
+  public EmailResponse findLastEmail(String mailboxEmail, ServiceFilter filter, LookupTrace trace) throws Exception {
     if (username == null || username.isBlank() || password == null || password.isBlank()) {
       throw new IllegalStateException("IMAP_USERNAME/IMAP_PASSWORD no están configuradas en variables de entorno.");
     }
 
-    Properties props = new Properties();
-    props.put("mail.store.protocol", "imaps");
-    props.put("mail.imaps.host", host);
-    props.put("mail.imaps.port", String.valueOf(port));
-    props.put("mail.imaps.ssl.enable", "true");
-
-    // Para servidores con certificado self-signed o cadena incompleta.
-    // Ejemplo recomendado: IMAP_SSL_TRUST=mail.tudominio.com (o "*" si no hay alternativa).
-    String trust = (sslTrust == null || sslTrust.isBlank()) ? host : sslTrust.trim();
-    props.put("mail.imaps.ssl.trust", trust);
-
-    Session session = Session.getInstance(props);
-
-    Store store = null;
-    Folder inbox = null;
+    OpenFolder primary = new OpenFolder();
+    OpenFolder current = primary;
+    boolean reusable = false;
+    CountingSocketFactory.Counter wire = CountingSocketFactory.begin();
 
     try {
-      store = session.getStore("imaps");
-      store.connect(host, port, username, password);
+      long t = trace.startPhase();
+      primary.connect();
+      trace.endPhase("connect", t);
+      trace.note("compress", connectionPool.compressionActive());
 
-      inbox = store.getFolder(folderName);
-      inbox.open(Folder.READ_ONLY);
+      t = trace.startPhase();
+      primary.open();
+      trace.imapCommand("SELECT");
+      trace.endPhase("open", t);
 
       // 1) Escaneo local de los últimos N mensajes (suele ser MUCHO más rápido que SEARCH en buzones grandes)
-      Message last = scanLastMessages(inbox, mailboxEmail, filter, Math.max(1, maxScan));
+      // Si se demora más de lo normal, HedgingPolicy repite el escaneo en otra conexión.
+      t = trace.startPhase();
+      int max = Math.max(1, maxScan);
+      ScanHit hit;
+      try {
+        hit = hedgingPolicy.execute(
+            "scan",
+            attempt(primary, f -> new ScanHit(primary, scanLastMessages(f, mailboxEmail, filter, max, trace))),
+            () -> {
+              OpenFolder hedge = new OpenFolder();
+              return attempt(hedge, f -> new ScanHit(hedge, scanLastMessages(f, mailboxEmail, filter, max, LookupTrace.DISABLED)));
+            },
+            trace
+        );
+      } catch (MessagingException e) {
+        // Un error de IMAP no puede "ganar" el hedge, por eso scanLastMessages lo propaga.
+        // Si la conexión primaria no se abortó, seguimos como siempre con el SEARCH.
+        if (!primary.isUsable()) throw e;
+        trace.note("scanError", e.getClass().getSimpleName() + ": " + e.getMessage());
+        hit = new ScanHit(primary, null);
+      }
+      current = hit.openFolder();
+      Folder inbox = current.folder();
+      Message last = hit.message();
+      trace.endPhase("scan", t);
+      trace.note("strategy", "scan");
 
       // 2) Fallback: búsqueda del servidor (puede ser lenta en algunos servidores cPanel)
       if (last == null) {
+        t = trace.startPhase();
         SearchTerm term = buildSearchTerm(filter);
         Message[] matches = inbox.search(term);
+        trace.imapCommand("SEARCH");
+        trace.note("searchMatches", matches == null ? 0 : matches.length);
         last = pickLatest(matches);
+        trace.endPhase("search", t);
+        trace.note("strategy", "search-fallback");
       }
 
       if (last == null) {
         throw new NoSuchElementException("No se encontró ningún correo para el servicio: " + filter.key());
       }
 
-      String subject = safeString(last.getSubject());
+      String subject = subjectOf(last);
       String from = extractFrom(last);
       Date received = last.getReceivedDate();
       if (received == null) received = last.getSentDate();
       Instant receivedAt = received != null ? received.toInstant() : null;
+      trace.note("selectedMessageNumber", last.getMessageNumber());
 
-      MailBodyExtractor.BodyResult bodyRes = MailBodyExtractor.extract(last);
+      t = trace.startPhase();
+      MailBodyExtractor.BodyResult bodyRes = extractBody(current, last, trace);
+      trace.endPhase("body", t);
+      reusable = true;
 
       return new EmailResponse(
           filter.key(),
@@ -95,13 +154,206 @@ public class ImapEmailService {
           bodyRes.body(),
           bodyRes.contentType()
       );
+    } catch (NoSuchElementException e) {
+      // "no encontrado" no es un fallo de la conexión: se puede reutilizar.
+      reusable = true;
+      throw e;
     } finally {
+      current.close(reusable);
+      if (current != primary) primary.close(false);
+      CountingSocketFactory.end();
+      trace.bytes(wire.bytesRead(), wire.bytesWritten());
+      logWire("last " + filter.key(), wire);
+    }
+  }
+
+  /**
+   * El cuerpo de un mensaje no cambia mientras no cambie el UIDVALIDITY de la carpeta,
+   * así que lo servimos desde {@link MailBodyStore} si ya lo decodificamos antes.
+   * Si hay que bajarlo y se demora, el hedge lo pide por UID en otra conexión.
+   */
+  private MailBodyExtractor.BodyResult extractBody(OpenFolder of, Message m, LookupTrace trace) throws Exception {
+    MailBodyStore.Key key = bodyKey(of.folder(), m);
+    if (key != null) {
+      Optional<MailBodyExtractor.BodyResult> cached = bodyStore.get(key);
+      if (cached.isPresent()) {
+        trace.note("bodySource", "store");
+        return cached.get();
+      }
+    }
+
+    trace.note("bodySource", "imap");
+    trace.imapCommand("FETCH BODY");
+    // La conexión del hedge se cierra aquí, fuera de run(): si ganó vuelve al pool, y si perdió
+    // ya quedó abortada y close() no la reutiliza.
+    OpenFolder[] hedgeFolder = new OpenFolder[1];
+    MailBodyExtractor.BodyResult res;
+    try {
+      res = hedgingPolicy.execute(
+          "body",
+          attempt(of, f -> MailBodyExtractor.extract(m)),
+          () -> {
+            if (key == null) return null;
+            OpenFolder hedge = new OpenFolder();
+            hedgeFolder[0] = hedge;
+            return attempt(hedge, f -> {
+              UIDFolder uf = (UIDFolder) f;
+              if (uf.getUIDValidity() != key.uidValidity()) throw new MessagingException("UIDVALIDITY cambió");
+              Message byUid = uf.getMessageByUID(key.uid());
+              if (byUid == null) throw new MessagingException("Mensaje UID " + key.uid() + " ya no existe");
+              return MailBodyExtractor.extract(byUid);
+            });
+          },
+          trace
+      );
+    } finally {
+      if (hedgeFolder[0] != null) hedgeFolder[0].close(true);
+    }
+    if (key != null) bodyStore.put(key, res);
+    return res;
+  }
+
+  /** Igual que la versión con hedging, para el camino que no usa {@link OpenFolder}. */
+  private MailBodyExtractor.BodyResult extractBody(Folder folder, Message m) throws Exception {
+    MailBodyStore.Key key = bodyKey(folder, m);
+    if (key != null) {
+      Optional<MailBodyExtractor.BodyResult> cached = bodyStore.get(key);
+      if (cached.isPresent()) return cached.get();
+    }
+
+    MailBodyExtractor.BodyResult res = MailBodyExtractor.extract(m);
+    if (key != null) bodyStore.put(key, res);
+    return res;
+  }
+
+  private MailBodyStore.Key bodyKey(Folder folder, Message m) {
+    try {
+      if (!(folder instanceof UIDFolder uf)) return null;
+      long uid = uf.getUID(m);
+      if (uid < 0) return null;
+      return new MailBodyStore.Key(uf.getUIDValidity(), uid);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private record ScanHit(OpenFolder openFolder, Message message) {}
+
+  private interface FolderStep<T> {
+    T apply(Folder folder) throws Exception;
+  }
+
+  private <T> HedgingPolicy.Attempt<T> attempt(OpenFolder of, FolderStep<T> step) {
+    return new HedgingPolicy.Attempt<>() {
+      @Override
+      public T run() throws Exception {
+        return of.run(step);
+      }
+
+      @Override
+      public void abort() {
+        of.abort();
+      }
+    };
+  }
+
+  /**
+   * Carpeta abierta sobre una conexión del pool. Un intento de hedge que pierde se aborta
+   * mientras otro hilo puede estar bloqueado leyendo en ella: en ese caso solo cortamos el
+   * socket y es ese hilo el que cierra y descarta la conexión al salir de run().
+   */
+  private final class OpenFolder {
+    private Store store;
+    private Folder folder;
+    private boolean busy;
+    private boolean aborted;
+    private boolean closed;
+
+    void connect() throws MessagingException {
+      Store s = connectionPool.borrow();
+      synchronized (this) {
+        store = s;
+        if (aborted) throw new MessagingException("Intento IMAP abortado");
+      }
+    }
+
+    void open() throws MessagingException {
+      Store s;
+      synchronized (this) {
+        s = store;
+      }
+      Folder f = s.getFolder(folderName);
+      f.open(Folder.READ_ONLY);
+      synchronized (this) {
+        folder = f;
+        if (aborted) throw new MessagingException("Intento IMAP abortado");
+      }
+    }
+
+    synchronized Folder folder() {
+      return folder;
+    }
+
+    /** false si el hedge la abortó (socket cortado) o ya se cerró. */
+    synchronized boolean isUsable() {
+      return !aborted && !closed;
+    }
+
+    <T> T run(FolderStep<T> step) throws Exception {
+      synchronized (this) {
+        if (aborted || closed) throw new MessagingException("Intento IMAP abortado");
+        busy = true;
+      }
       try {
-        if (inbox != null && inbox.isOpen()) inbox.close(false);
-      } catch (Exception ignored) {}
+        if (folder() == null) {
+          connect();
+          open();
+        }
+        return step.apply(folder());
+      } finally {
+        boolean cleanup;
+        synchronized (this) {
+          busy = false;
+          cleanup = aborted;
+        }
+        if (cleanup) close(false);
+      }
+    }
+
+    void abort() {
+      Store s;
+      boolean running;
+      synchronized (this) {
+        aborted = true;
+        running = busy;
+        s = store;
+      }
+      if (running) connectionPool.abort(s);
+      else close(false);
+    }
+
+    void close(boolean reusable) {
+      Store s;
+      Folder f;
+      boolean reuse;
+      synchronized (this) {
+        if (closed) return;
+        if (busy) {
+          // Lo cierra el hilo que está dentro de run().
+          aborted = true;
+          return;
+        }
+        closed = true;
+        s = store;
+        f = folder;
+        reuse = reusable && !aborted;
+      }
       try {
-        if (store != null && store.isConnected()) store.close();
-      } catch (Exception ignored) {}
+        if (f != null && f.isOpen()) f.close(false);
+      } catch (Exception ignored) {
+        reuse = false;
+      }
+      connectionPool.release(s, reuse);
     }
   }
 
@@ -159,23 +411,13 @@ public class ImapEmailService {
       throw new IllegalStateException("IMAP_USERNAME/IMAP_PASSWORD no están configuradas en variables de entorno.");
     }
 
-    Properties props = new Properties();
-    props.put("mail.store.protocol", "imaps");
-    props.put("mail.imaps.host", host);
-    props.put("mail.imaps.port", String.valueOf(port));
-    props.put("mail.imaps.ssl.enable", "true");
-
-    String trust = (sslTrust == null || sslTrust.isBlank()) ? host : sslTrust.trim();
-    props.put("mail.imaps.ssl.trust", trust);
-
-    Session session = Session.getInstance(props);
-
     Store store = null;
     Folder inbox = null;
+    boolean reusable = false;
+    CountingSocketFactory.Counter wire = CountingSocketFactory.begin();
 
     try {
-      store = session.getStore("imaps");
-      store.connect(host, port, username, password);
+      store = connectionPool.borrow();
 
       inbox = store.getFolder(folderName);
       inbox.open(Folder.READ_ONLY);
@@ -185,13 +427,14 @@ public class ImapEmailService {
         throw new NoSuchElementException("No se encontró ningún correo reciente para: " + mailboxEmail);
       }
 
-      String subject = safeString(last.getSubject());
+      String subject = subjectOf(last);
       String from = extractFrom(last);
       Date received = last.getReceivedDate();
       if (received == null) received = last.getSentDate();
       Instant receivedAt = received != null ? received.toInstant() : null;
 
-      MailBodyExtractor.BodyResult bodyRes = MailBodyExtractor.extract(last);
+      MailBodyExtractor.BodyResult bodyRes = extractBody(inbox, last);
+      reusable = true;
 
       return new EmailResponse(
           "any",
@@ -202,42 +445,160 @@ public class ImapEmailService {
           bodyRes.body(),
           bodyRes.contentType()
       );
+    } catch (NoSuchElementException e) {
+      // "no encontrado" no es un fallo de la conexión: se puede reutilizar.
+      reusable = true;
+      throw e;
     } finally {
       try {
         if (inbox != null && inbox.isOpen()) inbox.close(false);
-      } catch (Exception ignored) {}
-      try {
-        if (store != null && store.isConnected()) store.close();
-      } catch (Exception ignored) {}
+      } catch (Exception ignored) {
+        reusable = false;
+      }
+      connectionPool.release(store, reusable);
+      CountingSocketFactory.end();
+      logWire("last any", wire);
     }
   }
 
-  private Message scanLastMessages(Folder folder, String targetEmail, ServiceFilter filter, int max) {
+  /** Recibe cada resultado del historial a medida que se encuentra. */
+  public interface HistorySink {
+    void accept(EmailHistoryItem item) throws IOException;
+  }
+
+  /**
+   * Recorre la carpeta de más nuevo a más viejo en páginas de imap.history.page-size mensajes
+   * (el orden de secuencia es el orden de UID) y entrega cada coincidencia al sink apenas se
+   * encuentra. Con filter == null solo se filtra por destinatario.
+   *
+   * @return cantidad de resultados entregados
+   */
+  public int streamHistory(String mailboxEmail, ServiceFilter filter, Instant since, Instant until,
+                           HistorySink sink) throws Exception {
+    if (username == null || username.isBlank() || password == null || password.isBlank()) {
+      throw new IllegalStateException("IMAP_USERNAME/IMAP_PASSWORD no están configuradas en variables de entorno.");
+    }
+
+    Store store = null;
+    Folder inbox = null;
+    boolean reusable = false;
+    int written = 0;
+    CountingSocketFactory.Counter wire = CountingSocketFactory.begin();
+
     try {
-      int total = folder.getMessageCount();
-      if (total <= 0) return null;
+      store = connectionPool.borrow();
 
-      int start = Math.max(1, total - max + 1);
-      Message[] msgs = folder.getMessages(start, total);
+      inbox = store.getFolder(folderName);
+      inbox.open(Folder.READ_ONLY);
 
-      FetchProfile fp = new FetchProfile();
-      fp.add(FetchProfile.Item.ENVELOPE);
-      folder.fetch(msgs, fp);
+      String target = (mailboxEmail == null) ? "" : mailboxEmail.trim().toLowerCase(Locale.ROOT);
+      String serviceKey = filter != null ? filter.key() : "any";
+      int pageSize = Math.max(1, historyPageSize);
+
+      int hi = inbox.getMessageCount();
+      long lastUid = Long.MAX_VALUE;
+      int pagesSinceSelect = 0;
+
+      while (hi >= 1) {
+        int lo = Math.max(1, hi - pageSize + 1);
+        Message[] msgs = inbox.getMessages(lo, hi);
+
+        // En el historial casi todos los mensajes llegan al chequeo de destinatario: traemos
+        // esos headers en el mismo FETCH de la página en vez de uno por mensaje.
+        inbox.fetch(msgs, scanProfile(RECIPIENT_HEADERS));
+
+        UIDFolder uf = (UIDFolder) inbox;
+        boolean anyNotOlder = false;
+
+        for (int i = msgs.length - 1; i >= 0; i--) {
+          Message m = msgs[i];
+          long uid = uf.getUID(m);
+          // Si un EXPUNGE corrió la numeración, la página puede repetir mensajes ya vistos.
+          if (uid >= lastUid) continue;
+          lastUid = uid;
+
+          Instant at = receivedAt(m);
+          if (since != null && at != null && at.isBefore(since)) continue;
+          anyNotOlder = true;
+          if (until != null && at != null && at.isAfter(until)) continue;
+
+          boolean ok = filter != null
+              ? matchesFilter(m, target, filter, LookupTrace.DISABLED)
+              : target.isBlank() || matchesRecipient(m, target);
+          if (!ok) continue;
+
+          sink.accept(new EmailHistoryItem(
+              serviceKey,
+              mailboxEmail,
+              uid,
+              subjectOf(m),
+              extractFrom(m),
+              at
+          ));
+          written++;
+        }
 
-      String target = (targetEmail == null) ? "" : targetEmail.trim().toLowerCase(Locale.ROOT);
+        // Los UID crecen con la llegada: si toda la página es anterior a "since", no hay más.
+        if (since != null && !anyNotOlder) break;
+        hi = lo - 1;
 
-      // iterar de más nuevo a más viejo
-      for (int i = msgs.length - 1; i >= 0; i--) {
-        Message m = msgs[i];
-        if (matchesFilter(m, target, filter)) {
-          return m;
+        // IMAPFolder retiene en memoria cada mensaje ya leído; reabrir la carpeta lo libera
+        // y mantiene la memoria constante aunque el buzón tenga miles de correos.
+        if (++pagesSinceSelect >= HISTORY_PAGES_PER_SELECT && hi >= 1) {
+          inbox.close(false);
+          inbox.open(Folder.READ_ONLY);
+          pagesSinceSelect = 0;
         }
       }
 
-      return null;
-    } catch (Exception e) {
-      return null;
+      reusable = true;
+      return written;
+    } catch (IOException e) {
+      // El cliente cortó el stream: la sesión IMAP sigue sana.
+      reusable = true;
+      throw e;
+    } finally {
+      try {
+        if (inbox != null && inbox.isOpen()) inbox.close(false);
+      } catch (Exception ignored) {
+        reusable = false;
+      }
+      connectionPool.release(store, reusable);
+      CountingSocketFactory.end();
+      logWire("history " + (filter != null ? filter.key() : "any"), wire);
+    }
+  }
+
+  private Instant receivedAt(Message m) throws MessagingException {
+    Date received = m.getReceivedDate();
+    if (received == null) received = m.getSentDate();
+    return received != null ? received.toInstant() : null;
+  }
+
+  private Message scanLastMessages(Folder folder, String targetEmail, ServiceFilter filter, int max,
+                                   LookupTrace trace) throws MessagingException {
+    int total = folder.getMessageCount();
+    if (total <= 0) return null;
+
+    int start = Math.max(1, total - max + 1);
+    Message[] msgs = folder.getMessages(start, total);
+
+    folder.fetch(msgs, scanProfile());
+    trace.imapCommand(minimalFetch ? "FETCH UID INTERNALDATE HEADER.FIELDS" : "FETCH ENVELOPE UID");
+    trace.note("scanWindow", msgs.length);
+
+    String target = (targetEmail == null) ? "" : targetEmail.trim().toLowerCase(Locale.ROOT);
+
+    // iterar de más nuevo a más viejo
+    for (int i = msgs.length - 1; i >= 0; i--) {
+      Message m = msgs[i];
+      trace.inspected(1);
+      if (matchesFilter(m, target, filter, trace)) {
+        return m;
+      }
     }
+
+    return null;
   }
 
   private Message scanLastMessagesAny(Folder folder, String targetEmail, int max) {
@@ -248,9 +609,7 @@ public class ImapEmailService {
       int start = Math.max(1, total - max + 1);
       Message[] msgs = folder.getMessages(start, total);
 
-      FetchProfile fp = new FetchProfile();
-      fp.add(FetchProfile.Item.ENVELOPE);
-      folder.fetch(msgs, fp);
+      folder.fetch(msgs, scanProfile());
 
       String target = (targetEmail == null) ? "" : targetEmail.trim().toLowerCase(Locale.ROOT);
 
@@ -267,48 +626,90 @@ public class ImapEmailService {
     }
   }
 
-  private boolean matchesFilter(Message m, String targetEmailLower, ServiceFilter filter) {
+  /**
+   * Lo que pide cada FETCH de escaneo: UID + ENVELOPE, o UID + INTERNALDATE + headers con
+   * imap.fetch.minimal. Público para que {@link ImapWarmup} caliente exactamente el mismo FETCH.
+   */
+  public FetchProfile scanProfile(String... extraHeaders) {
+    FetchProfile fp = new FetchProfile();
+    fp.add(UIDFolder.FetchProfileItem.UID);
+    if (minimalFetch) {
+      fp.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+      for (String h : MATCH_HEADERS) fp.add(h);
+    } else {
+      fp.add(FetchProfile.Item.ENVELOPE);
+    }
+    for (String h : extraHeaders) {
+      if (!fp.contains(h)) fp.add(h);
+    }
+    return fp;
+  }
+
+  private boolean matchesFilter(Message m, String targetEmailLower, ServiceFilter filter, LookupTrace trace) {
     try {
       // 1) filtros del servicio (rápido). Primero filtramos aquí para no leer headers de miles de mensajes.
       String from = extractFrom(m).toLowerCase(Locale.ROOT);
-      String subject = safeString(m.getSubject()).toLowerCase(Locale.ROOT);
+      String subject = subjectOf(m).toLowerCase(Locale.ROOT);
 
-      boolean fromOk = matchesAny(from, filter.fromContains());
-      boolean subjectOk = matchesAny(subject, filter.subjectContains());
+      String fromNeedle = findNeedle(from, filter.fromContains());
+      String subjectNeedle = findNeedle(subject, filter.subjectContains());
 
-      if (filter.fromContains() != null && !filter.fromContains().isEmpty() && !fromOk) return false;
-      if (filter.subjectContains() != null && !filter.subjectContains().isEmpty() && !subjectOk) return false;
+      if (filter.fromContains() != null && !filter.fromContains().isEmpty() && fromNeedle == null) {
+        trace.rejected(m.getMessageNumber(), "from", from, subject);
+        return false;
+      }
+      if (filter.subjectContains() != null && !filter.subjectContains().isEmpty() && subjectNeedle == null) {
+        trace.rejected(m.getMessageNumber(), "subject", from, subject);
+        return false;
+      }
 
       // 2) destinatario (solo para los candidatos del servicio)
+      String recipientSource = null;
       if (targetEmailLower != null && !targetEmailLower.isBlank()) {
-        if (!matchesRecipient(m, targetEmailLower)) return false;
+        recipientSource = recipientSource(m, targetEmailLower, trace);
+        if (recipientSource == null) {
+          trace.rejected(m.getMessageNumber(), "recipient", from, subject);
+          return false;
+        }
       }
 
+      trace.matched(m.getMessageNumber(), fromNeedle, subjectNeedle, recipientSource);
       return true;
     } catch (Exception e) {
+      trace.rejected(m.getMessageNumber(), "error: " + e.getClass().getSimpleName(), "", "");
       return false;
     }
   }
 
   private boolean matchesRecipient(Message m, String targetEmailLower) {
+    return recipientSource(m, targetEmailLower, LookupTrace.DISABLED) != null;
+  }
+
+  /** Dónde se encontró el destinatario ("envelope", "To", "Delivered-To"...) o null si no es para él. */
+  private String recipientSource(Message m, String targetEmailLower, LookupTrace trace) {
     try {
       // A) API estándar (envelope): normalmente no requiere bajar todo el header.
-      Address[] all = m.getAllRecipients();
-      if (containsAddress(all, targetEmailLower)) return true;
+      // Ojo: getAllRecipients() también pide "Newsgroups", que no viene en el ENVELOPE y
+      // cuesta un FETCH por mensaje; por eso pedimos To/Cc/Bcc por separado.
+      // Con imap.fetch.minimal no hay ENVELOPE: To/Cc ya vienen precargados y se revisan abajo.
+      if (!minimalFetch) {
+        if (containsAddress(m.getRecipients(Message.RecipientType.TO), targetEmailLower)) return "envelope";
+        if (containsAddress(m.getRecipients(Message.RecipientType.CC), targetEmailLower)) return "envelope";
+        if (containsAddress(m.getRecipients(Message.RecipientType.BCC), targetEmailLower)) return "envelope";
+      }
 
       // B) Algunos servidores IMAP no llenan bien "recipients" en el envelope.
       // Revisamos headers comunes (incluyendo To/Cc) antes de declarar que no es para el destinatario.
-      if (headerContains(m, "To", targetEmailLower)) return true;
-      if (headerContains(m, "Cc", targetEmailLower)) return true;
-
-      // C) Headers típicos cuando hay forward/catch-all (esto puede ser más caro; por eso va después)
-      if (headerContains(m, "Delivered-To", targetEmailLower)) return true;
-      if (headerContains(m, "X-Original-To", targetEmailLower)) return true;
-      if (headerContains(m, "Envelope-To", targetEmailLower)) return true;
+      // C) Luego headers típicos cuando hay forward/catch-all.
+      // Cada header que no vino precargado en el FetchProfile es un FETCH aparte.
+      for (String h : RECIPIENT_HEADERS) {
+        if (!minimalFetch || !isMatchHeader(h)) trace.imapCommand("FETCH HEADER.FIELDS");
+        if (headerContains(m, h, targetEmailLower)) return h;
+      }
 
-      return false;
+      return null;
     } catch (Exception e) {
-      return false;
+      return null;
     }
   }
 
@@ -335,13 +736,14 @@ public class ImapEmailService {
     }
   }
 
-  private boolean matchesAny(String haystackLower, List<String> needles) {
-    if (needles == null || needles.isEmpty()) return true;
+  /** Primer needle contenido en el texto, o null si ninguno coincide (o la lista está vacía). */
+  private String findNeedle(String haystackLower, List<String> needles) {
+    if (needles == null || needles.isEmpty()) return null;
     for (String n : needles) {
       if (n == null || n.isBlank()) continue;
-      if (haystackLower.contains(n.toLowerCase(Locale.ROOT))) return true;
+      if (haystackLower.contains(n.toLowerCase(Locale.ROOT))) return n;
     }
-    return false;
+    return null;
   }
 
   private interface TermFactory {
@@ -369,9 +771,45 @@ public class ImapEmailService {
     return new AndTerm(a, b);
   }
 
+  private boolean isMatchHeader(String name) {
+    for (String h : MATCH_HEADERS) {
+      if (h.equalsIgnoreCase(name)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Asunto decodificado. getSubject()/getFrom() de IMAPMessage siempre piden el ENVELOPE,
+   * así que en modo minimal-fetch los armamos desde los headers precargados, igual que MimeMessage.
+   */
+  private String subjectOf(Message m) throws MessagingException {
+    if (!minimalFetch) return safeString(m.getSubject());
+    String[] raw = m.getHeader("Subject");
+    if (raw == null || raw.length == 0 || raw[0] == null) return "";
+    try {
+      return MimeUtility.decodeText(MimeUtility.unfold(raw[0]));
+    } catch (UnsupportedEncodingException e) {
+      return raw[0];
+    }
+  }
+
+  private Address[] fromOf(Message m) throws MessagingException {
+    if (!minimalFetch) return m.getFrom();
+    String[] raw = m.getHeader("From");
+    if (raw == null || raw.length == 0) return null;
+    return InternetAddress.parseHeader(String.join(",", raw), false);
+  }
+
+  private void logWire(String what, CountingSocketFactory.Counter wire) {
+    if (!log.isDebugEnabled()) return;
+    log.debug("IMAP {}: {} B leídos, {} B escritos (total proceso: {} / {})",
+        what, wire.bytesRead(), wire.bytesWritten(),
+        CountingSocketFactory.totalBytesRead(), CountingSocketFactory.totalBytesWritten());
+  }
+
   private String extractFrom(Message msg) {
     try {
-      Address[] from = msg.getFrom();
+      Address[] from = fromOf(msg);
       if (from == null || from.length == 0) return "";
       Address first = from[0];
       if (first instanceof InternetAddress ia) {
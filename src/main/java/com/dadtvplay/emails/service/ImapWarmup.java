@@ -0,0 +1,140 @@
+package com.dadtvplay.emails.service;
+
+import com.dadtvplay.emails.util.MailBodyExtractor;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.Store;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Modo de arranque rápido: al levantar la app abre las conexiones IMAP del pool y recorre
+ * la ventana de correos recientes (TLS, login, clases de JavaMail/MIME y caché del servidor)
+ * antes de que /health reporte listo. Así el primer usuario tras un deploy no paga ese costo.
+ */
+@Component
+public class ImapWarmup {
+
+  private static final Logger log = LoggerFactory.getLogger(ImapWarmup.class);
+
+  private final ImapConnectionPool connectionPool;
+  private final ClusterCoordinator clusterCoordinator;
+  private final ImapEmailService imapEmailService;
+
+  @Value("${imap.warmup.enabled:false}")
+  private boolean enabled;
+
+  @Value("${imap.username}")
+  private String username;
+
+  @Value("${imap.password}")
+  private String password;
+
+  @Value("${imap.folder}")
+  private String folderName;
+
+  @Value("${imap.scan.max:500}")
+  private int maxScan;
+
+  private volatile boolean ready;
+  private final AtomicBoolean firstLookupSeen = new AtomicBoolean(false);
+
+  public ImapWarmup(ImapConnectionPool connectionPool,
+                    ClusterCoordinator clusterCoordinator,
+                    ImapEmailService imapEmailService) {
+    this.connectionPool = connectionPool;
+    this.clusterCoordinator = clusterCoordinator;
+    this.imapEmailService = imapEmailService;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void onApplicationReady() {
+    if (!enabled) {
+      ready = true;
+      return;
+    }
+    // En otro hilo: el servidor ya atiende /health (503) mientras calentamos.
+    Thread t = new Thread(this::warmUp, "imap-warmup");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * Si el warmup está deshabilitado siempre está listo. Si está habilitado, quedamos listos
+   * cuando termina el intento (aunque falle), para no bloquear un deploy si el IMAP está caído.
+   */
+  public boolean isReady() {
+    return !enabled || ready;
+  }
+
+  /** Registra (una sola vez) cuánto tardó el primer lookup exitoso desde que arrancó la JVM. */
+  public void markLookupSucceeded() {
+    if (firstLookupSeen.compareAndSet(false, true)) {
+      log.info("Primer lookup exitoso a {} ms del arranque de la JVM", jvmUptimeMs());
+    }
+  }
+
+  void warmUp() {
+    long t0 = System.nanoTime();
+    List<Store> stores = new ArrayList<>();
+    boolean reusable = true;
+    try {
+      if (username == null || username.isBlank() || password == null || password.isBlank()) {
+        log.warn("Warmup IMAP omitido: IMAP_USERNAME/IMAP_PASSWORD no configuradas");
+        return;
+      }
+      if (!clusterCoordinator.isOwner()) {
+        log.info("Warmup IMAP omitido: esta instancia no es owner del cluster ({})", clusterCoordinator.currentOwner());
+        return;
+      }
+
+      int connections = Math.max(1, connectionPool.maxIdle());
+      for (int i = 0; i < connections; i++) {
+        stores.add(connectionPool.borrow());
+      }
+
+      primeRecentWindow(stores.get(0));
+    } catch (Exception e) {
+      reusable = false;
+      log.warn("Warmup IMAP falló: {}: {}", e.getClass().getSimpleName(), e.getMessage());
+    } finally {
+      for (Store s : stores) connectionPool.release(s, reusable);
+      ready = true;
+      log.info("Warmup IMAP terminado en {} ms ({} conexiones en el pool, {} ms desde el arranque de la JVM)",
+          (System.nanoTime() - t0) / 1_000_000, connectionPool.idleCount(), jvmUptimeMs());
+    }
+  }
+
+  private void primeRecentWindow(Store store) throws Exception {
+    Folder inbox = store.getFolder(folderName);
+    inbox.open(Folder.READ_ONLY);
+    try {
+      int total = inbox.getMessageCount();
+      if (total <= 0) return;
+
+      int start = Math.max(1, total - Math.max(1, maxScan) + 1);
+      Message[] msgs = inbox.getMessages(start, total);
+
+      // Mismo FETCH que el escaneo de cada lookup (respeta imap.fetch.minimal).
+      inbox.fetch(msgs, imapEmailService.scanProfile());
+
+      // Decodificar el más reciente carga las clases MIME/multipart que usa cada lookup.
+      MailBodyExtractor.extract(msgs[msgs.length - 1]);
+    } finally {
+      if (inbox.isOpen()) inbox.close(false);
+    }
+  }
+
+  private long jvmUptimeMs() {
+    return ManagementFactory.getRuntimeMXBean().getUptime();
+  }
+}
@@ -0,0 +1,128 @@
+package com.dadtvplay.emails.service;
+
+import com.dadtvplay.emails.util.MailBodyExtractor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cache de cuerpos ya extraídos, indexado por (UIDVALIDITY, UID) de la carpeta IMAP.
+ * Los cuerpos se guardan comprimidos (deflate) en ByteBuffers directos, fuera del heap,
+ * con un presupuesto máximo de bytes y desalojo LRU. Los correos OTP se piden varias veces
+ * seguidas, así evitamos volver a bajarlos y decodificarlos del servidor.
+ */
+@Component
+public class MailBodyStore {
+
+  public record Key(long uidValidity, long uid) {}
+
+  private record Entry(ByteBuffer data, int rawLength, String contentType) {}
+
+  // 0 o negativo => deshabilitado
+  @Value("${imap.body-store.max-bytes:8388608}")
+  private long maxBytes;
+
+  // accessOrder=true: la iteración va del menos al más recientemente usado.
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+  private long usedBytes;
+
+  public Optional<MailBodyExtractor.BodyResult> get(Key key) {
+    Entry e;
+    synchronized (this) {
+      e = entries.get(key);
+    }
+    if (e == null) return Optional.empty();
+
+    try {
+      return Optional.of(new MailBodyExtractor.BodyResult(inflate(e), e.contentType()));
+    } catch (DataFormatException ex) {
+      remove(key);
+      return Optional.empty();
+    }
+  }
+
+  public void put(Key key, MailBodyExtractor.BodyResult body) {
+    if (maxBytes <= 0 || body == null || body.body() == null) return;
+
+    byte[] raw = body.body().getBytes(StandardCharsets.UTF_8);
+    byte[] compressed = deflate(raw);
+    if (compressed.length > maxBytes) return;
+
+    ByteBuffer data = ByteBuffer.allocateDirect(compressed.length);
+    data.put(compressed).flip();
+    Entry entry = new Entry(data.asReadOnlyBuffer(), raw.length, body.contentType());
+
+    synchronized (this) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) usedBytes -= previous.data().capacity();
+      usedBytes += compressed.length;
+
+      Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+      while (usedBytes > maxBytes && it.hasNext()) {
+        Map.Entry<Key, Entry> eldest = it.next();
+        usedBytes -= eldest.getValue().data().capacity();
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void remove(Key key) {
+    Entry e = entries.remove(key);
+    if (e != null) usedBytes -= e.data().capacity();
+  }
+
+  public synchronized long usedBytes() {
+    return usedBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  private static byte[] deflate(byte[] raw) {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 4));
+      byte[] chunk = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(chunk);
+        out.write(chunk, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static String inflate(Entry e) throws DataFormatException {
+    Inflater inflater = new Inflater();
+    try {
+      // duplicate(): posición propia para lecturas concurrentes del mismo buffer.
+      inflater.setInput(e.data().duplicate());
+      byte[] raw = new byte[e.rawLength()];
+      int off = 0;
+      while (off < raw.length && !inflater.finished()) {
+        int n = inflater.inflate(raw, off, raw.length - off);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new DataFormatException("Cuerpo comprimido truncado");
+        }
+        off += n;
+      }
+      return new String(raw, 0, off, StandardCharsets.UTF_8);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package com.dadtvplay.emails.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Tokens compartidos por controllers y servicios: el header del token de admin y la
+ * comparación en tiempo constante que se usa para él y para el secreto del cluster.
+ */
+public final class AccessTokens {
+
+  public static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+
+  private AccessTokens() {}
+
+  /** false si no hay token configurado (la función queda deshabilitada) o no vino ninguno. */
+  public static boolean matches(String expected, String provided) {
+    if (expected == null || expected.isBlank() || provided == null) return false;
+    return MessageDigest.isEqual(
+        expected.getBytes(StandardCharsets.UTF_8),
+        provided.getBytes(StandardCharsets.UTF_8)
+    );
+  }
+}
@@ -0,0 +1,191 @@
+package com.dadtvplay.emails.util;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SocketFactory "plano" para JavaMail (mail.imaps.socketFactory) que cuenta los bytes que pasan
+ * por el socket. JavaMail monta TLS encima (respetando mail.imaps.ssl.trust), así que lo que
+ * contamos son bytes reales en la red.
+ *
+ * JavaMail lee y escribe en el mismo hilo que ejecuta el comando IMAP, por eso el conteo por
+ * consulta se hace con un contador asociado al hilo: {@link #begin()} / {@link #end()}.
+ */
+public final class CountingSocketFactory extends SocketFactory {
+
+  public static final class Counter {
+    // Con hedging dos hilos pueden sumar al mismo contador.
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public long bytesRead() {
+      return bytesRead.get();
+    }
+
+    public long bytesWritten() {
+      return bytesWritten.get();
+    }
+  }
+
+  private static final ThreadLocal<Counter> CURRENT = new ThreadLocal<>();
+  private static final ThreadLocal<Socket> LAST_CREATED = new ThreadLocal<>();
+  private static final AtomicLong TOTAL_READ = new AtomicLong();
+  private static final AtomicLong TOTAL_WRITTEN = new AtomicLong();
+
+  /** Empieza a contar el tráfico IMAP de este hilo. */
+  public static Counter begin() {
+    Counter c = new Counter();
+    CURRENT.set(c);
+    return c;
+  }
+
+  public static void end() {
+    CURRENT.remove();
+  }
+
+  /** Contador activo en este hilo (o null), para pasarlo a otro hilo con {@link #bind(Counter)}. */
+  public static Counter current() {
+    return CURRENT.get();
+  }
+
+  public static void bind(Counter counter) {
+    if (counter == null) CURRENT.remove();
+    else CURRENT.set(counter);
+  }
+
+  /**
+   * Último socket creado en este hilo (y lo olvida). Store.connect() crea el socket en el hilo
+   * que llama, así el pool puede asociar cada Store con su socket.
+   */
+  public static Socket takeLastCreated() {
+    Socket s = LAST_CREATED.get();
+    LAST_CREATED.remove();
+    return s;
+  }
+
+  public static long totalBytesRead() {
+    return TOTAL_READ.get();
+  }
+
+  public static long totalBytesWritten() {
+    return TOTAL_WRITTEN.get();
+  }
+
+  @Override
+  public Socket createSocket() {
+    return newSocket();
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    Socket s = newSocket();
+    s.connect(new InetSocketAddress(host, port));
+    return s;
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    Socket s = newSocket();
+    s.bind(new InetSocketAddress(localHost, localPort));
+    s.connect(new InetSocketAddress(host, port));
+    return s;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    Socket s = newSocket();
+    s.connect(new InetSocketAddress(host, port));
+    return s;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+    Socket s = newSocket();
+    s.bind(new InetSocketAddress(localAddress, localPort));
+    s.connect(new InetSocketAddress(address, port));
+    return s;
+  }
+
+  private static Socket newSocket() {
+    Socket s = new CountingSocket();
+    LAST_CREATED.set(s);
+    return s;
+  }
+
+  private static void countRead(long n) {
+    if (n <= 0) return;
+    TOTAL_READ.addAndGet(n);
+    Counter c = CURRENT.get();
+    if (c != null) c.bytesRead.addAndGet(n);
+  }
+
+  private static void countWritten(long n) {
+    if (n <= 0) return;
+    TOTAL_WRITTEN.addAndGet(n);
+    Counter c = CURRENT.get();
+    if (c != null) c.bytesWritten.addAndGet(n);
+  }
+
+  private static final class CountingSocket extends Socket {
+    private InputStream in;
+    private OutputStream out;
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (in == null) in = new CountingInputStream(super.getInputStream());
+      return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (out == null) out = new CountingOutputStream(super.getOutputStream());
+      return out;
+    }
+  }
+
+  private static final class CountingInputStream extends FilterInputStream {
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) countRead(1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      countRead(n);
+      return n;
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      countWritten(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      countWritten(len);
+    }
+  }
+}
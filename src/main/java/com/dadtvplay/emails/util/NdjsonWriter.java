@@ -0,0 +1,30 @@
+package com.dadtvplay.emails.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Escribe un objeto JSON por línea (application/x-ndjson) y hace flush en cada una, para que
+ * el cliente reciba cada resultado apenas se encuentra. Si el cliente lee lento, write()
+ * bloquea y con eso frena también la lectura del IMAP.
+ */
+public final class NdjsonWriter {
+
+  public static final String CONTENT_TYPE = "application/x-ndjson";
+
+  private final OutputStream out;
+  private final ObjectMapper objectMapper;
+
+  public NdjsonWriter(OutputStream out, ObjectMapper objectMapper) {
+    this.out = out;
+    this.objectMapper = objectMapper;
+  }
+
+  public void write(Object value) throws IOException {
+    out.write(objectMapper.writeValueAsBytes(value));
+    out.write('\n');
+    out.flush();
+  }
+}